@@ -0,0 +1,188 @@
+package org.jenkinsci.modules.windows_slave_installer;
+
+import hudson.ExtensionList;
+import hudson.ExtensionPoint;
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.security.ACL;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.security.ImpersonatingExecutorService;
+import jenkins.util.ContextResettingExecutorService;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * Receives notifications about updates of <tt>jenkins-slave.exe</tt> performed by {@link SlaveExeUpdater}.
+ * <p>
+ * Notifications are delivered asynchronously on behalf of {@link ACL#SYSTEM}, so implementations never block the update itself.
+ * Every listener has its own dispatch queue: it receives notifications in order,
+ * and a slow listener does not delay notifications for other listeners.
+ * If a listener falls behind by more than {@link #QUEUE_SIZE} notifications, new ones are dropped for it.
+ * Exceptions and linkage errors thrown by implementations are logged and ignored,
+ * so they do not prevent other listeners from receiving the notification.
+ * @since TODO
+ */
+public abstract class SlaveExeUpdateListener implements ExtensionPoint {
+
+    private static final Logger LOGGER = Logger.getLogger(SlaveExeUpdateListener.class.getName());
+
+    /**
+     * Maximum number of pending notifications per listener.
+     */
+    /*package*/ static final int QUEUE_SIZE = 1000;
+
+    /**
+     * Serial executors, one per listener.
+     * Idle dispatch threads are terminated, so stale entries do not hold any threads.
+     */
+    private static final Map<SlaveExeUpdateListener, ExecutorService> DISPATCHERS = new WeakHashMap<>();
+
+    /**
+     * Called when the updater starts checking the wrapper on the agent.
+     * @param c Agent
+     * @param agentExe Path to the wrapper executable on the agent
+     */
+    public void onCheckStarted(@Nonnull Computer c, @Nonnull FilePath agentExe) {}
+
+    /**
+     * Called when the wrapper on the agent is identical to the one bundled in the module.
+     * @param c Agent
+     * @param agentExe Path to the wrapper executable on the agent
+     * @param digest MD5 checksum of the wrapper
+     */
+    public void onIdentical(@Nonnull Computer c, @Nonnull FilePath agentExe, @Nonnull String digest) {}
+
+    /**
+     * Called when the wrapper has been replaced.
+     * The new wrapper will be used on the next service startup.
+     * @param c Agent
+     * @param agentExe Path to the wrapper executable on the agent
+     * @param oldDigest MD5 checksum of the previous wrapper
+     * @param newDigest MD5 checksum of the new wrapper
+     * @param bytes Size of the new wrapper
+     * @param durationMillis Duration of the update, including the check
+     */
+    public void onUpdated(@Nonnull Computer c, @Nonnull FilePath agentExe, @Nonnull String oldDigest, @Nonnull String newDigest,
+            long bytes, long durationMillis) {}
+
+    /**
+     * Called when the update is aborted, because <tt>jenkins-slave.exe.bak</tt> cannot be deleted.
+     * It usually means that the service is still running from the backup created by the previous update.
+     * @param c Agent
+     * @param backup Path to the locked backup file
+     */
+    public void onBackupLocked(@Nonnull Computer c, @Nonnull FilePath backup) {}
+
+    /**
+     * Called when the update fails.
+     * @param c Agent
+     * @param agentExe Path to the wrapper executable on the agent, {@code null} if the failure happened before it was resolved
+     * @param cause Failure cause
+     */
+    public void onFailed(@Nonnull Computer c, @CheckForNull FilePath agentExe, @Nonnull Throwable cause) {}
+
+    /**
+     * Gets all registered listeners.
+     */
+    @Nonnull
+    public static ExtensionList<SlaveExeUpdateListener> all() {
+        return ExtensionList.lookup(SlaveExeUpdateListener.class);
+    }
+
+    /*package*/ static void fireCheckStarted(@Nonnull final Computer c, @Nonnull final FilePath agentExe) {
+        fire(new Notification() {
+            @Override
+            public void deliver(SlaveExeUpdateListener l) {
+                l.onCheckStarted(c, agentExe);
+            }
+        });
+    }
+
+    /*package*/ static void fireIdentical(@Nonnull final Computer c, @Nonnull final FilePath agentExe, @Nonnull final String digest) {
+        fire(new Notification() {
+            @Override
+            public void deliver(SlaveExeUpdateListener l) {
+                l.onIdentical(c, agentExe, digest);
+            }
+        });
+    }
+
+    /*package*/ static void fireUpdated(@Nonnull final Computer c, @Nonnull final FilePath agentExe,
+            @Nonnull final String oldDigest, @Nonnull final String newDigest, final long bytes, final long durationMillis) {
+        fire(new Notification() {
+            @Override
+            public void deliver(SlaveExeUpdateListener l) {
+                l.onUpdated(c, agentExe, oldDigest, newDigest, bytes, durationMillis);
+            }
+        });
+    }
+
+    /*package*/ static void fireBackupLocked(@Nonnull final Computer c, @Nonnull final FilePath backup) {
+        fire(new Notification() {
+            @Override
+            public void deliver(SlaveExeUpdateListener l) {
+                l.onBackupLocked(c, backup);
+            }
+        });
+    }
+
+    /*package*/ static void fireFailed(@Nonnull final Computer c, @CheckForNull final FilePath agentExe, @Nonnull final Throwable cause) {
+        fire(new Notification() {
+            @Override
+            public void deliver(SlaveExeUpdateListener l) {
+                l.onFailed(c, agentExe, cause);
+            }
+        });
+    }
+
+    private static void fire(@Nonnull final Notification notification) {
+        for (final SlaveExeUpdateListener l : all()) {
+            getDispatcher(l).execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        notification.deliver(l);
+                    } catch (Exception | LinkageError ex) {
+                        LOGGER.log(Level.WARNING, "Listener " + l.getClass().getName() + " failed to process the notification", ex);
+                    }
+                }
+            });
+        }
+    }
+
+    @Nonnull
+    private static ExecutorService getDispatcher(@Nonnull final SlaveExeUpdateListener l) {
+        synchronized (DISPATCHERS) {
+            ExecutorService dispatcher = DISPATCHERS.get(l);
+            if (dispatcher == null) {
+                ThreadPoolExecutor executor = new ThreadPoolExecutor(0, 1, 60, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(QUEUE_SIZE),
+                        new NamingThreadFactory(new DaemonThreadFactory(), SlaveExeUpdateListener.class.getSimpleName() + " for " + l.getClass().getName()),
+                        new RejectedExecutionHandler() {
+                            @Override
+                            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                                LOGGER.log(Level.WARNING, "Listener {0} does not keep up with notifications, dropping one", l.getClass().getName());
+                            }
+                        });
+                dispatcher = new ImpersonatingExecutorService(new ContextResettingExecutorService(executor), ACL.SYSTEM);
+                DISPATCHERS.put(l, dispatcher);
+            }
+            return dispatcher;
+        }
+    }
+
+    private interface Notification {
+        void deliver(SlaveExeUpdateListener l);
+    }
+}
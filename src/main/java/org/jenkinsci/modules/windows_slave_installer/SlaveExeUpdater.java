@@ -16,6 +16,8 @@ import jenkins.model.Jenkins.MasterComputer;
 import java.io.IOException;
 import java.net.URL;
 import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nonnull;
 import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
 
@@ -43,7 +45,7 @@ public class SlaveExeUpdater extends ComputerListener {
     @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "Should be accessible to System Groovy Scripts")
     static boolean DISABLE_AUTOMATIC_UPDATE = Boolean.getBoolean("org.jenkinsci.modules.windows_slave_installer.disableAutoUpdate");
     
-    @Override @SuppressFBWarnings("RV_RETURN_VALUE_IGNORED_BAD_PRACTICE")
+    @Override
     public void onOnline(Computer c, final TaskListener listener) throws IOException, InterruptedException {
         if (DISABLE_AUTOMATIC_UPDATE) return;
         if (!(c instanceof SlaveComputer))  return;
@@ -58,51 +60,71 @@ public class SlaveExeUpdater extends ComputerListener {
         // do this asynchronously so as not to block Jenkins from using the slave right away
         MasterComputer.threadPoolForRemoting.submit(new Callable<Void>() {
             public Void call() throws Exception {
-                try {
-
-                    Channel ch = sc.getChannel();
-                    Slave n = sc.getNode();
-                    if (n==null || ch==null)   return null;    // defensive check
-
-                    FilePath root = new FilePath(ch, n.getRemoteFS());
-                    FilePath agentExe = root.child("jenkins-slave.exe");
-                    if (!agentExe.exists())     return null;    // nothing to update
-
-                    String current = agentExe.digest();
-
-                    URL ourExe = WindowsSlaveInstaller.class.getResource("jenkins-slave.exe");
-                    if (ourCopy==null) {
-                        ourCopy = Util.getDigestOf(ourExe.openStream());
-                    }
-
-                    if(ourCopy.equals(current))     return null; // identical
-
-                    // at this point we want to overwrite jenkins-slave.exe on slave with our copy.
-                    // This is tricky because the process is running. The trick is to rename the current
-                    // file and place a new file in the correct name.
-
-                    FilePath tmp = new FilePath(agentExe.getChannel(), agentExe.getRemote()+".new");
-                    FilePath backup = new FilePath(agentExe.getChannel(), agentExe.getRemote()+".bak");
-
-                    if (backup.exists()) {
-                        try {
-                            backup.delete();
-                        } catch (IOException e) {
-                            listener.getLogger().println("Looks like jenkins-slave.exe.bak is currently running. aborting overwrite");
-                            return null;
-                        }
-                    }
-
-                    tmp.copyFrom(ourExe);
-                    agentExe.renameTo(backup);
-                    tmp.renameTo(agentExe);
-                    listener.getLogger().println("Scheduled overwrite of jenkins-slave.exe on the next service startup");
-                } catch (Throwable e) {
-                    e.printStackTrace(listener.error("Failed to update jenkins-slave.exe"));
-                }
+                Channel ch = sc.getChannel();
+                Slave n = sc.getNode();
+                if (n==null || ch==null)   return null;    // defensive check
 
+                update(sc, new FilePath(ch, n.getRemoteFS()), listener);
                 return null;
             }
         });
     }
+
+    /**
+     * Overwrites <tt>jenkins-slave.exe</tt> in the agent root directory if it differs from our copy.
+     * @param c Agent
+     * @param root Agent root directory
+     * @param listener Listener for the update log
+     */
+    @SuppressFBWarnings("RV_RETURN_VALUE_IGNORED_BAD_PRACTICE")
+    /*package*/ void update(@Nonnull Computer c, @Nonnull FilePath root, @Nonnull TaskListener listener) {
+        final long started = System.nanoTime();
+        FilePath agentExe = null;
+        try {
+            FilePath candidate = root.child("jenkins-slave.exe");
+            if (!candidate.exists())     return;    // nothing to update
+            agentExe = candidate;
+
+            SlaveExeUpdateListener.fireCheckStarted(c, agentExe);
+            String current = agentExe.digest();
+
+            URL ourExe = WindowsSlaveInstaller.class.getResource("jenkins-slave.exe");
+            if (ourCopy==null) {
+                ourCopy = Util.getDigestOf(ourExe.openStream());
+            }
+
+            if(ourCopy.equals(current)) { // identical
+                SlaveExeUpdateListener.fireIdentical(c, agentExe, current);
+                return;
+            }
+
+            // at this point we want to overwrite jenkins-slave.exe on slave with our copy.
+            // This is tricky because the process is running. The trick is to rename the current
+            // file and place a new file in the correct name.
+
+            FilePath tmp = new FilePath(agentExe.getChannel(), agentExe.getRemote()+".new");
+            FilePath backup = new FilePath(agentExe.getChannel(), agentExe.getRemote()+".bak");
+
+            if (backup.exists()) {
+                try {
+                    backup.delete();
+                } catch (IOException e) {
+                    listener.getLogger().println("Looks like jenkins-slave.exe.bak is currently running. aborting overwrite");
+                    SlaveExeUpdateListener.fireBackupLocked(c, backup);
+                    return;
+                }
+            }
+
+            tmp.copyFrom(ourExe);
+            final long bytes = tmp.length();
+            agentExe.renameTo(backup);
+            tmp.renameTo(agentExe);
+            listener.getLogger().println("Scheduled overwrite of jenkins-slave.exe on the next service startup");
+            SlaveExeUpdateListener.fireUpdated(c, agentExe, current, ourCopy, bytes,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+        } catch (Throwable e) {
+            e.printStackTrace(listener.error("Failed to update jenkins-slave.exe"));
+            SlaveExeUpdateListener.fireFailed(c, agentExe, e);
+        }
+    }
 }
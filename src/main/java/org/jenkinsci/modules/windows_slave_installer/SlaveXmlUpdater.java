@@ -0,0 +1,451 @@
+package org.jenkinsci.modules.windows_slave_installer;
+
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.Slave;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.slaves.ComputerLauncher;
+import hudson.slaves.JNLPLauncher;
+import hudson.slaves.SlaveComputer;
+import hudson.util.ArgumentListBuilder;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.model.Jenkins;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * Regenerates <tt>jenkins-slave.xml</tt> on connected Windows agents.
+ * The descriptor is rendered on the master by {@link WindowsSlaveInstaller#generateSlaveXml(String, String, String, String, Map)}
+ * and written to the agent only if its content differs from the current file.
+ * Changes are applied on the next service startup.
+ * <p>
+ * The operation is intended to be invoked from System Groovy Scripts after changing the master URL,
+ * the Remoting JAR URL or the agent JVM options.
+ * Only inbound agents with an installed service are updated.
+ * <p>
+ * Agent options managed by the master (secret, work directory, tunnel and WebSocket settings) are taken from the launcher,
+ * all other agent options are retained from the existing descriptor.
+ * The JNLP file and the Remoting JAR download URLs are retained as well, unless URL update is requested explicitly.
+ * @since TODO
+ */
+public class SlaveXmlUpdater {
+
+    private static final Logger LOGGER = Logger.getLogger(SlaveXmlUpdater.class.getName());
+
+    /**
+     * Default number of agents being updated concurrently.
+     */
+    public static final int DEFAULT_PARALLELISM = 8;
+
+    /**
+     * Status of the descriptor update on a single agent.
+     */
+    public enum Status {
+        /** The descriptor has been overwritten. */
+        UPDATED,
+        /** The descriptor is up to date. */
+        IDENTICAL,
+        /** There is no service descriptor in the agent root directory. */
+        NOT_INSTALLED,
+        /** The agent is offline, is not a Windows machine or it is not an inbound agent. */
+        SKIPPED,
+        /** The update has failed, see the listener output for the details. */
+        FAILED
+    }
+
+    private static final Pattern SERVICE_ID_PATTERN = Pattern.compile("<id>(.+?)</id>");
+
+    private static final Pattern ARGUMENTS_PATTERN = Pattern.compile(
+            "<arguments>.*?-jar \"%BASE%\\\\slave\\.jar\"(.*?)</arguments>", Pattern.DOTALL);
+
+    private static final Pattern DOWNLOAD_PATTERN = Pattern.compile("(?:<!--\\s*)?<download [^>]*/>(?:\\s*-->)?");
+
+    /**
+     * Agent options managed by the master, with the number of values they take.
+     */
+    private static final Map<String, Integer> MASTER_OPTIONS = new HashMap<>();
+
+    static {
+        MASTER_OPTIONS.put("-jnlpUrl", 1);
+        MASTER_OPTIONS.put("-secret", 1);
+        MASTER_OPTIONS.put("-workDir", 1);
+        MASTER_OPTIONS.put("-internalDir", 1);
+        MASTER_OPTIONS.put("-failIfWorkDirIsMissing", 0);
+        MASTER_OPTIONS.put("-tunnel", 1);
+        MASTER_OPTIONS.put("-webSocket", 0);
+    }
+
+    private SlaveXmlUpdater() {}
+
+    /**
+     * Updates descriptors on all connected agents.
+     * URLs configured on the agents are retained.
+     * @param listener Listener for the update log
+     * @return Update statuses indexed by the node name
+     * @throws InterruptedException The update has been interrupted
+     */
+    @Nonnull
+    public static Map<String, Status> updateAll(@Nonnull TaskListener listener) throws InterruptedException {
+        return updateAll(listener, false);
+    }
+
+    /**
+     * Updates descriptors on all connected agents.
+     * @param listener Listener for the update log
+     * @param updateUrls If {@code true}, the JNLP file and the Remoting JAR download URLs will be replaced
+     *                   by ones based on the Jenkins root URL.
+     *                   Otherwise the URLs from the existing descriptors are retained.
+     * @return Update statuses indexed by the node name
+     * @throws InterruptedException The update has been interrupted
+     */
+    @Nonnull
+    public static Map<String, Status> updateAll(@Nonnull TaskListener listener, boolean updateUrls) throws InterruptedException {
+        return updateAll(Jenkins.get().getComputers(), listener, DEFAULT_PARALLELISM, updateUrls);
+    }
+
+    /**
+     * Updates descriptors on the specified agents.
+     * @param computers Agents to be updated. Non-agent computers will be skipped.
+     * @param listener Listener for the update log
+     * @param parallelism Maximum number of agents being updated concurrently
+     * @param updateUrls If {@code true}, the JNLP file and the Remoting JAR download URLs will be replaced
+     *                   by ones based on the Jenkins root URL
+     * @return Update statuses indexed by the node name
+     * @throws InterruptedException The update has been interrupted
+     */
+    @Nonnull
+    public static Map<String, Status> updateAll(@Nonnull Computer[] computers, @Nonnull final TaskListener listener, int parallelism,
+            final boolean updateUrls) throws InterruptedException {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism should be positive, got " + parallelism);
+        }
+
+        final Map<String, Status> res = new TreeMap<>();
+        final Map<String, Callable<Status>> tasks = new LinkedHashMap<>();
+        for (Computer c : computers) {
+            if (!(c instanceof SlaveComputer)) continue;
+            final SlaveComputer sc = (SlaveComputer) c;
+            tasks.put(sc.getName(), new Callable<Status>() {
+                @Override
+                public Status call() throws Exception {
+                    return doUpdate(sc, listener, updateUrls);
+                }
+            });
+        }
+        if (tasks.isEmpty()) {
+            return res;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, tasks.size()),
+                new NamingThreadFactory(new DaemonThreadFactory(), SlaveXmlUpdater.class.getSimpleName()));
+        try {
+            List<String> names = new ArrayList<>(tasks.keySet());
+            List<Future<Status>> futures = executor.invokeAll(tasks.values());
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    res.put(names.get(i), futures.get(i).get());
+                } catch (ExecutionException ex) {
+                    // Should not happen, update() reports failures in the status
+                    LOGGER.log(Level.WARNING, "Unexpected failure during the descriptor update on " + names.get(i), ex.getCause());
+                    res.put(names.get(i), Status.FAILED);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return Collections.unmodifiableMap(res);
+    }
+
+    /**
+     * Updates the descriptor on a single agent.
+     * @param sc Agent to be updated
+     * @param listener Listener for the update log
+     * @param updateUrls If {@code true}, the JNLP file and the Remoting JAR download URLs will be replaced
+     *                   by ones based on the Jenkins root URL
+     * @return Update status
+     * @throws InterruptedException The update has been interrupted
+     */
+    @Nonnull
+    public static Status update(@Nonnull SlaveComputer sc, @Nonnull TaskListener listener, boolean updateUrls) throws InterruptedException {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        return doUpdate(sc, listener, updateUrls);
+    }
+
+    @Nonnull
+    private static Status doUpdate(@Nonnull SlaveComputer sc, @Nonnull TaskListener listener, boolean updateUrls) throws InterruptedException {
+        final String name = sc.getName();
+        try {
+            final Boolean isUnix = sc.isUnix();
+            final Slave n = sc.getNode();
+            final VirtualChannel ch = sc.getChannel();
+            if (isUnix == null || isUnix || n == null || ch == null) { // Offline or Unix machines
+                return Status.SKIPPED;
+            }
+            final ComputerLauncher launcher = n.getLauncher();
+            if (!(launcher instanceof JNLPLauncher)) { // Services are installed only for inbound agents
+                return Status.SKIPPED;
+            }
+
+            final FilePath descriptor = new FilePath(ch, n.getRemoteFS()).child("jenkins-slave.xml");
+            if (!descriptor.exists()) {
+                return Status.NOT_INSTALLED;
+            }
+            final String current = descriptor.readToString();
+
+            // Retain the installed service Id, the service might have been installed
+            // from a root directory path which is spelled differently from the one known to the master
+            String serviceId = getServiceId(current);
+            if (serviceId == null) {
+                serviceId = WindowsSlaveInstaller.generateServiceId(n.getRemoteFS());
+            }
+
+            // Use the Java of the agent process, which is expected to be launched by the service
+            final Object javaHome = sc.getSystemProperties().get("java.home");
+            if (javaHome == null) {
+                throw new IOException("Cannot determine java.home of the agent " + name);
+            }
+
+            final String xml = generateSlaveXml(sc, (JNLPLauncher) launcher, serviceId, javaHome.toString(), current, updateUrls);
+            if (xml == null) {
+                listener.error("Cannot render jenkins-slave.xml for " + name + ": Jenkins root URL is not configured");
+                return Status.FAILED;
+            }
+
+            Status status = descriptor.act(new UpdateXmlCallable(xml));
+            if (status == Status.UPDATED) {
+                listener.getLogger().println("Updated jenkins-slave.xml on " + name + ", it will be applied on the next service startup");
+            }
+            return status;
+        } catch (IOException | RuntimeException ex) {
+            ex.printStackTrace(listener.error("Failed to update jenkins-slave.xml on " + name));
+            return Status.FAILED;
+        }
+    }
+
+    /**
+     * Gets the service Id from the existing descriptor.
+     * @return Service Id or {@code null} if it is not defined
+     */
+    @CheckForNull
+    /*package*/ static String getServiceId(@Nonnull String xml) {
+        Matcher m = SERVICE_ID_PATTERN.matcher(xml);
+        return m.find() ? m.group(1).trim() : null;
+    }
+
+    /**
+     * Gets the agent arguments from the existing descriptor.
+     * @return Arguments passed to the agent JAR or {@code null} if they cannot be located
+     */
+    @CheckForNull
+    /*package*/ static List<String> getRunnerArguments(@Nonnull String xml) {
+        Matcher m = ARGUMENTS_PATTERN.matcher(xml);
+        return m.find() ? tokenize(m.group(1)) : null;
+    }
+
+    /**
+     * Gets the Remoting JAR download definition from the existing descriptor.
+     * @return Download definition including the surrounding comment, {@code null} if it is missing
+     */
+    @CheckForNull
+    /*package*/ static String getDownloadDefinition(@Nonnull String xml) {
+        Matcher m = DOWNLOAD_PATTERN.matcher(xml);
+        return m.find() ? m.group() : null;
+    }
+
+    /**
+     * Renders the descriptor for the agent.
+     * @param currentXml Existing descriptor. Agent-side arguments and URLs will be retained from it.
+     * @param updateUrls If {@code true}, the JNLP file and the Remoting JAR download URLs will be replaced
+     *                   by ones based on the Jenkins root URL
+     * @return Descriptor or {@code null} if the Jenkins root URL is not configured
+     */
+    @CheckForNull
+    /*package*/ static String generateSlaveXml(@Nonnull SlaveComputer sc, @Nonnull JNLPLauncher launcher,
+            @Nonnull String serviceId, @Nonnull String javaHome, @CheckForNull String currentXml, boolean updateUrls) throws IOException {
+        final String rootUrl = Jenkins.get().getRootUrl();
+        if (rootUrl == null) {
+            return null;
+        }
+
+        String download = null;
+        List<String> currentArgs = null;
+        if (currentXml != null) {
+            download = updateUrls ? null : getDownloadDefinition(currentXml);
+            currentArgs = getRunnerArguments(currentXml);
+        }
+        if (download == null) {
+            download = WindowsSlaveInstaller.AgentURLMacroProvider.generateDownloadMacroValue(new URL(rootUrl + "jnlpJars/slave.jar"));
+        }
+
+        Map<String, String> macroValues = new TreeMap<>();
+        macroValues.put(WindowsSlaveInstaller.AgentURLMacroProvider.MACRO_NAME, download);
+
+        return WindowsSlaveInstaller.generateSlaveXml(
+                serviceId,
+                javaHome + "\\bin\\java.exe", launcher.vmargs,
+                buildRunnerArguments(sc, launcher, rootUrl, currentArgs, updateUrls).toStringWithQuote(), macroValues);
+    }
+
+    /**
+     * Builds agent arguments.
+     * Options managed by the master are taken from the {@link JNLPLauncher} settings,
+     * all other options are retained from the existing arguments in their original order.
+     * @param currentArgs Existing agent arguments, {@code null} if they are not known
+     * @param updateUrls If {@code false}, the existing JNLP file URL is retained
+     */
+    @Nonnull
+    /*package*/ static ArgumentListBuilder buildRunnerArguments(@Nonnull SlaveComputer sc, @Nonnull JNLPLauncher launcher,
+            @Nonnull String rootUrl, @CheckForNull List<String> currentArgs, boolean updateUrls) {
+        if (currentArgs == null) {
+            currentArgs = Collections.emptyList();
+        }
+
+        final Map<String, List<String>> options = new LinkedHashMap<>();
+        if (updateUrls || !currentArgs.contains("-jnlpUrl")) {
+            options.put("-jnlpUrl", Collections.singletonList(rootUrl + sc.getUrl() + "slave-agent.jnlp"));
+        }
+        final String secret = sc.getJnlpMac();
+        if (secret != null) {
+            options.put("-secret", Collections.singletonList(secret));
+        }
+        final List<String> workDirOptions = tokenize(launcher.getWorkDirSettings().toCommandLineString(sc));
+        for (int i = 0; i < workDirOptions.size(); i++) {
+            final String option = workDirOptions.get(i);
+            final int arity = MASTER_OPTIONS.containsKey(option) ? MASTER_OPTIONS.get(option) : 0;
+            options.put(option, workDirOptions.subList(i + 1, Math.min(i + 1 + arity, workDirOptions.size())));
+            i += arity;
+        }
+        if (StringUtils.isNotBlank(launcher.tunnel)) {
+            options.put("-tunnel", Collections.singletonList(launcher.tunnel.trim()));
+        }
+        if (launcher.isWebSocket()) {
+            options.put("-webSocket", Collections.<String>emptyList());
+        }
+
+        // Replace master options in place, so that unchanged arguments are rendered identically
+        ArgumentListBuilder args = new ArgumentListBuilder();
+        Set<String> written = new HashSet<>();
+        for (int i = 0; i < currentArgs.size(); i++) {
+            final String arg = currentArgs.get(i);
+            final Integer arity = MASTER_OPTIONS.get(arg);
+            if (arity == null || (arg.equals("-jnlpUrl") && !options.containsKey(arg))) {
+                args.add(arg);
+                continue;
+            }
+            i += arity;
+            if (options.containsKey(arg) && written.add(arg)) {
+                args.add(arg).add(options.get(arg));
+            }
+        }
+        for (Map.Entry<String, List<String>> option : options.entrySet()) {
+            if (written.add(option.getKey())) {
+                args.add(option.getKey()).add(option.getValue());
+            }
+        }
+        return args;
+    }
+
+    /**
+     * Splits the arguments string in the format produced by {@link ArgumentListBuilder#toStringWithQuote()}.
+     * Unlike {@link hudson.util.QuotedStringTokenizer}, backslashes are not treated as escape characters,
+     * because they are used in Windows paths.
+     */
+    @Nonnull
+    /*package*/ static List<String> tokenize(@Nonnull String str) {
+        List<String> res = new ArrayList<>();
+        StringBuilder token = null;
+        boolean quoted = false;
+        for (char c : str.toCharArray()) {
+            if (c == '"') {
+                quoted = !quoted;
+                if (token == null) {
+                    token = new StringBuilder();
+                }
+            } else if (Character.isWhitespace(c) && !quoted) {
+                if (token != null) {
+                    res.add(token.toString());
+                    token = null;
+                }
+            } else {
+                if (token == null) {
+                    token = new StringBuilder();
+                }
+                token.append(c);
+            }
+        }
+        if (token != null) {
+            res.add(token.toString());
+        }
+        return res;
+    }
+
+    /**
+     * Compares the descriptor with the new content and atomically replaces it if needed.
+     */
+    /*package*/ static final class UpdateXmlCallable extends MasterToSlaveFileCallable<Status> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String xml;
+
+        UpdateXmlCallable(@Nonnull String xml) {
+            this.xml = xml;
+        }
+
+        @Override
+        public Status invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+            if (!f.isFile()) {
+                return Status.NOT_INSTALLED;
+            }
+            if (xml.equals(FileUtils.readFileToString(f, "UTF-8"))) {
+                return Status.IDENTICAL;
+            }
+
+            // Write a new copy and then replace the original one, so that the service never sees a partial file
+            File tmp = new File(f.getPath() + ".new");
+            FileUtils.writeStringToFile(tmp, xml, "UTF-8");
+            try {
+                try {
+                    Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException ex) {
+                    Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            } catch (IOException ex) {
+                Files.deleteIfExists(tmp.toPath());
+                throw ex;
+            }
+            return Status.UPDATED;
+        }
+    }
+}
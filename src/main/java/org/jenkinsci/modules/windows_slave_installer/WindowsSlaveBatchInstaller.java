@@ -0,0 +1,289 @@
+package org.jenkinsci.modules.windows_slave_installer;
+
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import hudson.util.StreamTaskListener;
+import hudson.util.jna.DotNet;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.ByteArrayOutputStream;
+import org.jenkinsci.modules.slave_installer.InstallationException;
+import org.jenkinsci.modules.slave_installer.LaunchConfiguration;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * Installs multiple agents as Windows services in one pass.
+ * It is useful for hosts running several agents, each one with its own root directory.
+ * Unlike {@link WindowsSlaveInstaller}, the installer does not terminate the JVM
+ * and reports the installation status for every agent instead.
+ * @see WindowsSlaveInstaller
+ */
+public class WindowsSlaveBatchInstaller {
+
+    private static final Logger LOGGER = Logger.getLogger(WindowsSlaveBatchInstaller.class.getName());
+
+    /**
+     * Default number of services being installed concurrently.
+     */
+    public static final int DEFAULT_PARALLELISM = 4;
+
+    private final int parallelism;
+    private final boolean startServices;
+
+    /**
+     * Creates the installer.
+     * @param parallelism Maximum number of services being installed concurrently
+     * @param startServices If {@code true}, the services will be started right after the installation.
+     *                      It should not be used when one of the agents is the current process.
+     */
+    public WindowsSlaveBatchInstaller(int parallelism, boolean startServices) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism should be positive, got " + parallelism);
+        }
+        this.parallelism = parallelism;
+        this.startServices = startServices;
+    }
+
+    public WindowsSlaveBatchInstaller() {
+        this(DEFAULT_PARALLELISM, false);
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public boolean isStartServices() {
+        return startServices;
+    }
+
+    /**
+     * Installs the agents as Windows services.
+     * The service wrapper and the agent JAR payloads are loaded once and then shared between all agents.
+     * @param configurations Launch configurations of the agents.
+     *                       Every configuration should point to its own agent root directory.
+     * @return Installation results in the order of the passed configurations
+     * @throws InstallationException The installation cannot be performed on this host at all
+     * @throws IOException Failed to load the service wrapper
+     * @throws InterruptedException The installation has been interrupted
+     */
+    @Nonnull
+    public List<Result> install(@Nonnull List<? extends LaunchConfiguration> configurations)
+            throws InstallationException, IOException, InterruptedException {
+        return install(configurations, false);
+    }
+
+    /**
+     * Installs the agents.
+     * @param skipDotNetCheck Do not check the .NET Framework version, for testing purposes
+     */
+    /*package*/ List<Result> install(@Nonnull List<? extends LaunchConfiguration> configurations, boolean skipDotNetCheck)
+            throws InstallationException, IOException, InterruptedException {
+        if (!skipDotNetCheck && !DotNet.isInstalled(4, 0)) {
+            throw new InstallationException(Messages.WindowsSlaveInstaller_DotNetRequired());
+        }
+        if (configurations.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        final byte[] agentExePayload = IOUtils.toByteArray(WindowsSlaveInstaller.class.getResource("jenkins-slave.exe"));
+        final Map<File, byte[]> agentJarPayloads = new HashMap<>();
+
+        // Render all descriptors sequentially, so that shared payloads are loaded only once
+        final List<Result> results = new ArrayList<>(configurations.size());
+        final List<Result> taskResults = new ArrayList<>(configurations.size());
+        final List<Callable<Void>> tasks = new ArrayList<>(configurations.size());
+        final Set<File> rootDirs = new HashSet<>();
+        final Set<String> serviceIds = new HashSet<>();
+        for (LaunchConfiguration params : configurations) {
+            final Result result = new Result();
+            results.add(result);
+            try {
+                final File dir = params.getStorage().getAbsoluteFile();
+                result.rootDir = dir;
+                result.serviceId = WindowsSlaveInstaller.generateServiceId(dir.getPath());
+                if (!rootDirs.add(dir.getCanonicalFile())) {
+                    throw new InstallationException("Agent root directory " + dir + " is used by another configuration in the batch");
+                }
+                if (!serviceIds.add(result.serviceId)) {
+                    throw new InstallationException("Service id " + result.serviceId + " of the agent root directory " + dir 
+                            + " is used by another configuration in the batch");
+                }
+
+                final File agentExe = WindowsSlaveInstaller.deployAgentFiles(params, dir, result.serviceId,
+                        agentExePayload, getAgentJarPayload(params, agentJarPayloads));
+                taskResults.add(result);
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        installService(agentExe, dir, result);
+                        return null;
+                    }
+                });
+            } catch (IOException | InstallationException ex) {
+                LOGGER.log(Level.WARNING, "Failed to prepare the agent root directory " + result.rootDir, ex);
+                result.failure = ex;
+            }
+        }
+
+        if (tasks.isEmpty()) {
+            return results;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, tasks.size()),
+                new NamingThreadFactory(new DaemonThreadFactory(), WindowsSlaveBatchInstaller.class.getSimpleName()));
+        try {
+            List<Future<Void>> futures = executor.invokeAll(tasks);
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    futures.get(i).get();
+                } catch (ExecutionException ex) {
+                    Result result = taskResults.get(i);
+                    LOGGER.log(Level.WARNING, "Failed to install the service with id=" + result.serviceId, ex.getCause());
+                    result.failure = ex.getCause();
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return results;
+    }
+
+    @CheckForNull
+    private static byte[] getAgentJarPayload(@Nonnull LaunchConfiguration params, @Nonnull Map<File, byte[]> cache) throws IOException {
+        File jarFile = params.getJarFile();
+        if (jarFile == null || !jarFile.isFile()) {
+            return null;
+        }
+        jarFile = jarFile.getCanonicalFile();
+        byte[] payload = cache.get(jarFile);
+        if (payload == null) {
+            payload = FileUtils.readFileToByteArray(jarFile);
+            cache.put(jarFile, payload);
+        }
+        return payload;
+    }
+
+    private void installService(@Nonnull File agentExe, @Nonnull File dir, @Nonnull Result result) throws InterruptedException {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            StreamTaskListener task = new StreamTaskListener(baos);
+            int r = runElevated(agentExe, "install", task, dir);
+            if (r != 0) {
+                result.failure = new InstallationException(baos.toString(Charset.defaultCharset()));
+                return;
+            }
+            result.installed = true;
+
+            if (startServices) {
+                r = runElevated(agentExe, "start", task, dir);
+                if (r != 0) {
+                    result.failure = new InstallationException("Start service failed. Exit code=" + r + "\n" + baos.toString(Charset.defaultCharset()));
+                    return;
+                }
+                result.started = true;
+            }
+        } catch (IOException | RuntimeException ex) {
+            LOGGER.log(Level.WARNING, "Failed to install the service with id=" + result.getServiceId(), ex);
+            result.failure = ex;
+        }
+    }
+
+    /**
+     * Invokes the service wrapper with a SCM management command.
+     * Overridden in tests.
+     */
+    /*package*/ int runElevated(@Nonnull File agentExe, @Nonnull String command, @Nonnull TaskListener out, @Nonnull File pwd)
+            throws IOException, InterruptedException {
+        return WindowsSlaveInstaller.runElevated(agentExe, command, out, pwd);
+    }
+
+    /**
+     * Installation result for a single agent.
+     */
+    public static final class Result {
+
+        @CheckForNull
+        private volatile File rootDir;
+        @CheckForNull
+        private volatile String serviceId;
+        private volatile boolean installed;
+        private volatile boolean started;
+        @CheckForNull
+        private volatile Throwable failure;
+
+        /*package*/ Result() {
+        }
+
+        /**
+         * Gets the agent root directory.
+         * @return Root directory or {@code null} if it cannot be retrieved from the launch configuration
+         */
+        @CheckForNull
+        public File getRootDir() {
+            return rootDir;
+        }
+
+        /**
+         * Gets the service Id.
+         * @return Service Id or {@code null} if the agent root directory cannot be retrieved
+         */
+        @CheckForNull
+        public String getServiceId() {
+            return serviceId;
+        }
+
+        /**
+         * Checks whether the service has been registered in the system.
+         * Always {@code false} if the agent directory preparation has failed.
+         */
+        public boolean isInstalled() {
+            return installed;
+        }
+
+        /**
+         * Checks whether the service has been started by the installer.
+         */
+        public boolean isStarted() {
+            return started;
+        }
+
+        /**
+         * Gets the installation failure.
+         * @return Failure cause or {@code null} if the installation has succeeded
+         */
+        @CheckForNull
+        public Throwable getFailure() {
+            return failure;
+        }
+
+        public boolean isSuccessful() {
+            return failure == null;
+        }
+
+        @Override
+        public String toString() {
+            return "Result{serviceId=" + serviceId + ", rootDir=" + rootDir + ", installed=" + installed
+                    + ", started=" + started + ", failure=" + failure + "}";
+        }
+    }
+}
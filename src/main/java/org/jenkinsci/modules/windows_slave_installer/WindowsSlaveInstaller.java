@@ -75,38 +75,16 @@ public class WindowsSlaveInstaller extends SlaveInstaller {
         install(params, prompter, false);
     }
     
-    @SuppressFBWarnings(value = { "DM_EXIT", "RV_RETURN_VALUE_IGNORED_BAD_PRACTICE" }, justification = "Legacy design, but as designed")
+    @SuppressFBWarnings(value = "DM_EXIT", justification = "Legacy design, but as designed")
     /*package*/ void install(LaunchConfiguration params, Prompter prompter, boolean mock) throws InstallationException, IOException, InterruptedException {
         if(!mock && !DotNet.isInstalled(4, 0)) {
             throw new InstallationException(Messages.WindowsSlaveInstaller_DotNetRequired());
         }
         
         final File dir = params.getStorage().getAbsoluteFile();
-        if (!dir.exists())
-            if (!dir.mkdirs()){
-                throw new InstallationException(Messages.WindowsSlaveInstaller_RootFsCreationFailed(dir));
-            }
-        params.getLatestJarURL();
-
-        final File agentExe = new File(dir, "jenkins-slave.exe");
-        FileUtils.copyURLToFile(WindowsSlaveInstaller.class.getResource("jenkins-slave.exe"), agentExe);
-
-        // removed since 1.13
-        new File(dir, "jenkins-slave.exe.config").delete();
-
-        // write out the descriptor
         final String serviceId = generateServiceId(dir.getPath());
-        String xml = generateSlaveXml(
-                serviceId,
-                System.getProperty("java.home")+"\\bin\\java.exe", null, 
-                params.buildRunnerArguments().toStringWithQuote(), 
-                Arrays.asList(new MacroValueProvider[] {new AgentURLMacroProvider(params)}));
-        FileUtils.writeStringToFile(new File(dir, "jenkins-slave.xml"),xml,"UTF-8");
-
-        // copy slave.jar
-        File dstAgentJar = new File(dir,"slave.jar").getCanonicalFile();
-        if(!dstAgentJar.exists()) // perhaps slave.jar is already there?
-            FileUtils.copyFile(params.getJarFile(), dstAgentJar);
+        final File agentExe = deployAgentFiles(params, dir, serviceId, 
+                IOUtils.toByteArray(WindowsSlaveInstaller.class.getResource("jenkins-slave.exe")), null);
 
         if (mock) {
             // If the installation is mocked, do not really try to install it
@@ -133,6 +111,51 @@ public class WindowsSlaveInstaller extends SlaveInstaller {
         System.exit(0);
     }
 
+    /**
+     * Writes the service wrapper, its descriptor and the agent JAR to the agent root directory.
+     * @param params Launch configuration of the agent
+     * @param dir Absolute path to the agent root directory
+     * @param serviceId Service Id to be put into the descriptor
+     * @param agentExePayload Contents of the service wrapper executable
+     * @param agentJarPayload Contents of the agent JAR.
+     *                        If {@code null}, the JAR will be copied from {@link LaunchConfiguration#getJarFile()}.
+     * @return Path to the service wrapper executable
+     */
+    @SuppressFBWarnings(value = "RV_RETURN_VALUE_IGNORED_BAD_PRACTICE", justification = "Legacy design, but as designed")
+    /*package*/ static File deployAgentFiles(@Nonnull LaunchConfiguration params, @Nonnull File dir, @Nonnull String serviceId,
+            @Nonnull byte[] agentExePayload, @CheckForNull byte[] agentJarPayload) throws InstallationException, IOException {
+        if (!dir.exists())
+            if (!dir.mkdirs()){
+                throw new InstallationException(Messages.WindowsSlaveInstaller_RootFsCreationFailed(dir));
+            }
+        params.getLatestJarURL();
+
+        final File agentExe = new File(dir, "jenkins-slave.exe");
+        FileUtils.writeByteArrayToFile(agentExe, agentExePayload);
+
+        // removed since 1.13
+        new File(dir, "jenkins-slave.exe.config").delete();
+
+        // write out the descriptor
+        String xml = generateSlaveXml(
+                serviceId,
+                System.getProperty("java.home")+"\\bin\\java.exe", null, 
+                params.buildRunnerArguments().toStringWithQuote(), 
+                Arrays.asList(new MacroValueProvider[] {new AgentURLMacroProvider(params)}));
+        FileUtils.writeStringToFile(new File(dir, "jenkins-slave.xml"),xml,"UTF-8");
+
+        // copy slave.jar
+        File dstAgentJar = new File(dir,"slave.jar").getCanonicalFile();
+        if(!dstAgentJar.exists()) { // perhaps slave.jar is already there?
+            if (agentJarPayload != null) {
+                FileUtils.writeByteArrayToFile(dstAgentJar, agentJarPayload);
+            } else {
+                FileUtils.copyFile(params.getJarFile(), dstAgentJar);
+            }
+        }
+        return agentExe;
+    }
+
     public static String generateServiceId(String slaveRoot) throws IOException {
         return "jenkinsslave-"+slaveRoot.replace(':','_').replace('\\','_').replace('/','_');
     }
@@ -0,0 +1,152 @@
+package org.jenkinsci.modules.windows_slave_installer;
+
+import hudson.ExtensionList;
+import hudson.FilePath;
+import hudson.model.Computer;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestExtension;
+
+/**
+ * Tests of {@link SlaveExeUpdateListener}.
+ */
+public class SlaveExeUpdateListenerTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private static final List<String> UPDATE_SEQUENCE = Arrays.asList("checkStarted", "identical:old", "updated:old:new:42");
+
+    @Test
+    public void shouldDeliverEventsInOrder() throws Exception {
+        fireUpdateSequence();
+
+        assertThat(ExtensionList.lookupSingleton(Recorder.class).take(3), equalTo(UPDATE_SEQUENCE));
+    }
+
+    @Test
+    public void shouldDeliverEventsWhenAnotherListenerFails() throws Exception {
+        fireUpdateSequence();
+
+        assertThat(ExtensionList.lookupSingleton(Recorder.class).take(3), equalTo(UPDATE_SEQUENCE));
+    }
+
+    @Test(timeout = 60000)
+    public void shouldNotDelayOtherListenersOnSlowListener() throws Exception {
+        SlowListener.release = new CountDownLatch(1);
+        try {
+            // Would hang if the dispatch was synchronous
+            fireUpdateSequence();
+            assertThat("Events should be delivered while the slow listener is running",
+                    ExtensionList.lookupSingleton(Recorder.class).take(3), equalTo(UPDATE_SEQUENCE));
+            assertThat("The slow listener should still be blocked",
+                    ExtensionList.lookupSingleton(SlowListener.class).events.isEmpty(), equalTo(true));
+        } finally {
+            SlowListener.release.countDown();
+        }
+        assertThat(ExtensionList.lookupSingleton(SlowListener.class).take(3), equalTo(UPDATE_SEQUENCE));
+    }
+
+    private void fireUpdateSequence() throws Exception {
+        Computer c = j.createSlave().toComputer();
+        FilePath agentExe = new FilePath(new File(j.jenkins.getRootDir(), "jenkins-slave.exe"));
+        SlaveExeUpdateListener.fireCheckStarted(c, agentExe);
+        SlaveExeUpdateListener.fireIdentical(c, agentExe, "old");
+        SlaveExeUpdateListener.fireUpdated(c, agentExe, "old", "new", 42, 1);
+    }
+
+    /**
+     * Records notifications as strings, so that they can be compared with the expected sequence.
+     */
+    /*package*/ static abstract class RecordingListener extends SlaveExeUpdateListener {
+
+        final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onCheckStarted(Computer c, FilePath agentExe) {
+            events.add("checkStarted");
+        }
+
+        @Override
+        public void onIdentical(Computer c, FilePath agentExe, String digest) {
+            events.add("identical:" + digest);
+        }
+
+        @Override
+        public void onUpdated(Computer c, FilePath agentExe, String oldDigest, String newDigest, long bytes, long durationMillis) {
+            events.add("updated:" + oldDigest + ":" + newDigest + ":" + bytes);
+        }
+
+        @Override
+        public void onBackupLocked(Computer c, FilePath backup) {
+            events.add("backupLocked:" + backup.getName());
+        }
+
+        @Override
+        public void onFailed(Computer c, FilePath agentExe, Throwable cause) {
+            events.add("failed:" + (agentExe != null ? agentExe.getName() : null));
+        }
+
+        List<String> take(int count) throws InterruptedException {
+            List<String> res = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                String event = events.poll(10, TimeUnit.SECONDS);
+                if (event == null) {
+                    break;
+                }
+                res.add(event);
+            }
+            return res;
+        }
+    }
+
+    @TestExtension
+    public static final class Recorder extends RecordingListener {
+    }
+
+    @TestExtension("shouldDeliverEventsWhenAnotherListenerFails")
+    public static final class FailingListener extends SlaveExeUpdateListener {
+
+        @Override
+        public void onCheckStarted(Computer c, FilePath agentExe) {
+            throw new IllegalStateException("Broken listener");
+        }
+
+        @Override
+        public void onIdentical(Computer c, FilePath agentExe, String digest) {
+            throw new NoClassDefFoundError("Broken listener");
+        }
+
+        @Override
+        public void onUpdated(Computer c, FilePath agentExe, String oldDigest, String newDigest, long bytes, long durationMillis) {
+            throw new IllegalStateException("Broken listener");
+        }
+    }
+
+    @TestExtension("shouldNotDelayOtherListenersOnSlowListener")
+    public static final class SlowListener extends RecordingListener {
+
+        static volatile CountDownLatch release;
+
+        @Override
+        public void onCheckStarted(Computer c, FilePath agentExe) {
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            super.onCheckStarted(c, agentExe);
+        }
+    }
+}
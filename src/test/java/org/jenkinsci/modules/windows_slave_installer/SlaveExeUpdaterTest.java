@@ -0,0 +1,129 @@
+package org.jenkinsci.modules.windows_slave_installer;
+
+import hudson.ExtensionList;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+import hudson.remoting.Channel;
+import hudson.slaves.DumbSlave;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestExtension;
+
+/**
+ * Tests of {@link SlaveExeUpdater}.
+ */
+public class SlaveExeUpdaterTest {
+
+    @Rule
+    public TemporaryFolder tmpDir = new TemporaryFolder();
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private byte[] ourExe;
+    private File agentExe;
+
+    @Before
+    public void setUp() throws Exception {
+        ourExe = IOUtils.toByteArray(WindowsSlaveInstaller.class.getResource("jenkins-slave.exe"));
+        agentExe = new File(tmpDir.getRoot(), "jenkins-slave.exe");
+    }
+
+    @Test
+    public void shouldSkipMissingExecutable() throws Exception {
+        update(j.createSlave().toComputer(), new FilePath(tmpDir.getRoot()));
+
+        assertThat("The executable should not be created", agentExe.exists(), equalTo(false));
+        assertThat(recorder().events.isEmpty(), equalTo(true));
+    }
+
+    @Test
+    public void shouldNotUpdateIdenticalExecutable() throws Exception {
+        FileUtils.writeByteArrayToFile(agentExe, ourExe);
+
+        update(j.createSlave().toComputer(), new FilePath(tmpDir.getRoot()));
+
+        assertThat(recorder().take(2), equalTo(Arrays.asList("checkStarted", "identical:" + digest(ourExe))));
+        assertThat("Backup should not be created", new File(tmpDir.getRoot(), "jenkins-slave.exe.bak").exists(), equalTo(false));
+    }
+
+    @Test
+    public void shouldUpdateOutdatedExecutable() throws Exception {
+        byte[] oldExe = "outdated".getBytes("UTF-8");
+        FileUtils.writeByteArrayToFile(agentExe, oldExe);
+
+        update(j.createSlave().toComputer(), new FilePath(tmpDir.getRoot()));
+
+        assertThat(recorder().take(2), equalTo(Arrays.asList("checkStarted",
+                "updated:" + digest(oldExe) + ":" + digest(ourExe) + ":" + ourExe.length)));
+        assertThat("The executable should be replaced", FileUtils.readFileToByteArray(agentExe), equalTo(ourExe));
+        assertThat("The old executable should be kept as a backup",
+                FileUtils.readFileToByteArray(new File(tmpDir.getRoot(), "jenkins-slave.exe.bak")), equalTo(oldExe));
+        assertThat("The temporary file should be moved", new File(tmpDir.getRoot(), "jenkins-slave.exe.new").exists(), equalTo(false));
+    }
+
+    @Test
+    public void shouldAbortUpdateWhenBackupIsLocked() throws Exception {
+        byte[] oldExe = "outdated".getBytes("UTF-8");
+        FileUtils.writeByteArrayToFile(agentExe, oldExe);
+        // A non-empty directory cannot be deleted, like a backup of the running executable
+        File backup = new File(tmpDir.getRoot(), "jenkins-slave.exe.bak");
+        FileUtils.writeStringToFile(new File(backup, "locked"), "locked", "UTF-8");
+
+        update(j.createSlave().toComputer(), new FilePath(tmpDir.getRoot()));
+
+        assertThat(recorder().take(2), equalTo(Arrays.asList("checkStarted", "backupLocked:jenkins-slave.exe.bak")));
+        assertThat("The executable should not be replaced", FileUtils.readFileToByteArray(agentExe), equalTo(oldExe));
+    }
+
+    @Test
+    public void shouldReportFailedUpdate() throws Exception {
+        // The digest of a directory cannot be calculated
+        assertThat(agentExe.mkdir(), equalTo(true));
+
+        update(j.createSlave().toComputer(), new FilePath(tmpDir.getRoot()));
+
+        assertThat(recorder().take(2), equalTo(Arrays.asList("checkStarted", "failed:jenkins-slave.exe")));
+    }
+
+    @Test
+    public void shouldReportFailureBeforeResolvingExecutable() throws Exception {
+        DumbSlave agent = j.createOnlineSlave();
+        Channel channel = (Channel) agent.getChannel();
+        channel.close();
+        channel.join();
+
+        update(agent.toComputer(), new FilePath(channel, agent.getRemoteFS()));
+
+        assertThat(recorder().take(1), equalTo(Collections.singletonList("failed:null")));
+    }
+
+    private static void update(Computer c, FilePath root) {
+        new SlaveExeUpdater().update(c, root, TaskListener.NULL);
+    }
+
+    private static String digest(byte[] data) throws Exception {
+        return Util.getDigestOf(new ByteArrayInputStream(data));
+    }
+
+    private static Recorder recorder() {
+        return ExtensionList.lookupSingleton(Recorder.class);
+    }
+
+    @TestExtension
+    public static final class Recorder extends SlaveExeUpdateListenerTest.RecordingListener {
+    }
+}
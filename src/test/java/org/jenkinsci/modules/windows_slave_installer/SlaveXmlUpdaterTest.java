@@ -0,0 +1,217 @@
+package org.jenkinsci.modules.windows_slave_installer;
+
+import hudson.model.TaskListener;
+import hudson.model.User;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import hudson.slaves.DumbSlave;
+import hudson.slaves.JNLPLauncher;
+import hudson.slaves.SlaveComputer;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import jenkins.model.Jenkins;
+import jenkins.model.JenkinsLocationConfiguration;
+import jenkins.slaves.RemotingWorkDirSettings;
+import org.acegisecurity.AccessDeniedException;
+import org.apache.commons.io.FileUtils;
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+import org.jenkinsci.modules.windows_slave_installer.SlaveXmlUpdater.Status;
+import org.jenkinsci.modules.windows_slave_installer.SlaveXmlUpdater.UpdateXmlCallable;
+import org.jenkinsci.modules.windows_slave_installer.WindowsSlaveInstaller.AgentURLMacroProvider;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.MockAuthorizationStrategy;
+
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of {@link SlaveXmlUpdater}.
+ */
+public class SlaveXmlUpdaterTest {
+
+    @Rule
+    public TemporaryFolder tmpDir = new TemporaryFolder();
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void shouldSkipMissingDescriptor() throws Exception {
+        File descriptor = new File(tmpDir.getRoot(), "jenkins-slave.xml");
+        assertThat(new UpdateXmlCallable(render("myservice", "-jnlpUrl foo")).invoke(descriptor, null),
+                equalTo(Status.NOT_INSTALLED));
+        assertThat("The descriptor should not be created", descriptor.exists(), equalTo(false));
+    }
+
+    @Test
+    public void shouldNotRewriteIdenticalDescriptor() throws Exception {
+        File descriptor = tmpDir.newFile("jenkins-slave.xml");
+        String xml = render("myservice", "-jnlpUrl foo");
+        FileUtils.writeStringToFile(descriptor, xml, "UTF-8");
+        assertThat("Make the file modification detectable", descriptor.setLastModified(1000L), equalTo(true));
+
+        assertThat(new UpdateXmlCallable(xml).invoke(descriptor, null), equalTo(Status.IDENTICAL));
+        assertThat("The descriptor has been rewritten", descriptor.lastModified(), equalTo(1000L));
+    }
+
+    @Test
+    public void shouldUpdateStaleDescriptor() throws Exception {
+        File descriptor = tmpDir.newFile("jenkins-slave.xml");
+        FileUtils.writeStringToFile(descriptor, render("myservice", "-jnlpUrl foo"), "UTF-8");
+        String xml = render("myservice", "-jnlpUrl bar");
+
+        assertThat(new UpdateXmlCallable(xml).invoke(descriptor, null), equalTo(Status.UPDATED));
+        assertThat(FileUtils.readFileToString(descriptor, "UTF-8"), equalTo(xml));
+        assertThat("The temporary file should be moved", new File(tmpDir.getRoot(), "jenkins-slave.xml.new").exists(), equalTo(false));
+    }
+
+    @Test
+    public void shouldReadInstalledServiceId() throws Exception {
+        assertThat(SlaveXmlUpdater.getServiceId(render("installedservice", "-jnlpUrl foo")), equalTo("installedservice"));
+        assertThat(SlaveXmlUpdater.getServiceId("<service></service>"), nullValue());
+    }
+
+    @Test
+    public void shouldPassLauncherSettingsToArguments() throws Exception {
+        JNLPLauncher launcher = new JNLPLauncher("myhost:50000", "-Xmx256m", RemotingWorkDirSettings.getEnabledDefaults());
+        launcher.setWebSocket(true);
+        SlaveComputer sc = createJnlpAgent("agent", launcher);
+        String rootUrl = j.jenkins.getRootUrl();
+
+        String xml = SlaveXmlUpdater.generateSlaveXml(sc, launcher, "myservice", "C:\\java", null, true);
+        assertThat("Root URL should be configured", xml, notNullValue());
+        assertThat(xml, containsString("<id>myservice</id>"));
+        assertThat(xml, containsString("<executable>C:\\java\\bin\\java.exe</executable>"));
+        String arguments = getArguments(xml);
+        assertThat(arguments, startsWith("<arguments>-Xrs -Xmx256m -jar \"%BASE%\\slave.jar\" "));
+        assertThat(arguments, containsString("-jnlpUrl " + rootUrl + "computer/agent/slave-agent.jnlp"));
+        assertThat(arguments, containsString("-secret " + sc.getJnlpMac()));
+        assertThat(arguments, containsString("-workDir C:\\jenkins"));
+        assertThat(arguments, containsString("-tunnel myhost:50000"));
+        assertThat(arguments, containsString("-webSocket"));
+        assertThat(xml, containsString("<download from=\"" + rootUrl + "jnlpJars/slave.jar\""));
+    }
+
+    @Test
+    public void shouldRetainAgentSideArguments() throws Exception {
+        JNLPLauncher launcher = new JNLPLauncher(null, null, RemotingWorkDirSettings.getDisabledDefaults());
+        launcher.setWebSocket(true);
+        SlaveComputer sc = createJnlpAgent("agent", launcher);
+        String rootUrl = j.jenkins.getRootUrl();
+        String current = render("myservice", "-jnlpUrl https://internal.proxy/jenkins/computer/agent/slave-agent.jnlp "
+                + "-secret oldsecret -noCertificateCheck -cert \"C:\\My Certs\\ca.pem\" -tunnel oldhost:50000");
+
+        String arguments = getArguments(SlaveXmlUpdater.generateSlaveXml(sc, launcher, "myservice", "myjava", current, false));
+        assertThat(arguments, endsWith("-jnlpUrl https://internal.proxy/jenkins/computer/agent/slave-agent.jnlp -secret " + sc.getJnlpMac()
+                + " -noCertificateCheck -cert \"C:\\My Certs\\ca.pem\" -webSocket"));
+
+        arguments = getArguments(SlaveXmlUpdater.generateSlaveXml(sc, launcher, "myservice", "myjava", current, true));
+        assertThat(arguments, endsWith("-jnlpUrl " + rootUrl + "computer/agent/slave-agent.jnlp -secret " + sc.getJnlpMac()
+                + " -noCertificateCheck -cert \"C:\\My Certs\\ca.pem\" -webSocket"));
+    }
+
+    @Test
+    public void shouldNotChangeUpToDateDescriptor() throws Exception {
+        JNLPLauncher launcher = new JNLPLauncher("myhost:50000", "-Xmx256m", RemotingWorkDirSettings.getEnabledDefaults());
+        SlaveComputer sc = createJnlpAgent("agent", launcher);
+
+        String current = SlaveXmlUpdater.generateSlaveXml(sc, launcher, "myservice", "myjava", null, true);
+        assertThat(SlaveXmlUpdater.generateSlaveXml(sc, launcher, "myservice", "myjava", current, false), equalTo(current));
+        assertThat(SlaveXmlUpdater.generateSlaveXml(sc, launcher, "myservice", "myjava", current, true), equalTo(current));
+    }
+
+    @Test
+    public void shouldRetainDownloadDefinition() throws Exception {
+        JNLPLauncher launcher = new JNLPLauncher(null, null, RemotingWorkDirSettings.getDisabledDefaults());
+        SlaveComputer sc = createJnlpAgent("agent", launcher);
+        String rootUrl = j.jenkins.getRootUrl();
+        Map<String, String> macroValues = Collections.singletonMap(AgentURLMacroProvider.MACRO_NAME,
+                "<download from=\"https://internal.proxy/jnlpJars/slave.jar\" to=\"%BASE%\\slave.jar\"/>");
+        String current = WindowsSlaveInstaller.generateSlaveXml("myservice", "myjava", null, "-jnlpUrl foo", macroValues);
+
+        String xml = SlaveXmlUpdater.generateSlaveXml(sc, launcher, "myservice", "myjava", current, false);
+        assertThat(xml, containsString(macroValues.get(AgentURLMacroProvider.MACRO_NAME)));
+
+        xml = SlaveXmlUpdater.generateSlaveXml(sc, launcher, "myservice", "myjava", current, true);
+        assertThat(xml, not(containsString("https://internal.proxy")));
+        assertThat(xml, containsString("<download from=\"" + rootUrl + "jnlpJars/slave.jar\""));
+    }
+
+    @Test
+    public void shouldNotRenderWithoutRootUrl() throws Exception {
+        JNLPLauncher launcher = new JNLPLauncher(null, null, RemotingWorkDirSettings.getDisabledDefaults());
+        SlaveComputer sc = createJnlpAgent("agent", launcher);
+        JenkinsLocationConfiguration.get().setUrl(null);
+
+        assertThat(SlaveXmlUpdater.generateSlaveXml(sc, launcher, "myservice", "myjava", null, true), nullValue());
+    }
+
+    @Test
+    public void shouldTokenizeWindowsPaths() {
+        assertThat(SlaveXmlUpdater.tokenize("-workDir \"C:\\Program Files\\jenkins\"  -cert C:\\ca.pem -secret \"\""),
+                equalTo(Arrays.asList("-workDir", "C:\\Program Files\\jenkins", "-cert", "C:\\ca.pem", "-secret", "")));
+    }
+
+    @Test
+    public void shouldSkipUnsupportedAgents() throws Exception {
+        createJnlpAgent("offline", new JNLPLauncher(null, null, RemotingWorkDirSettings.getEnabledDefaults()));
+        DumbSlave unix = j.createOnlineSlave(); // Not an inbound agent, and not a Windows machine
+
+        Map<String, Status> res = SlaveXmlUpdater.updateAll(TaskListener.NULL);
+
+        assertThat("Only agents should be processed", res.keySet(), equalTo((Set<String>) new TreeSet<>(Arrays.asList("offline", unix.getNodeName()))));
+        assertThat(res.get("offline"), equalTo(Status.SKIPPED));
+        assertThat(res.get(unix.getNodeName()), equalTo(Status.SKIPPED));
+        assertThat(SlaveXmlUpdater.update((SlaveComputer) unix.toComputer(), TaskListener.NULL, false), equalTo(Status.SKIPPED));
+    }
+
+    @Test
+    public void shouldRequireAdministerPermission() throws Exception {
+        j.jenkins.setSecurityRealm(j.createDummySecurityRealm());
+        j.jenkins.setAuthorizationStrategy(new MockAuthorizationStrategy()
+                .grant(Jenkins.READ).everywhere().to("user")
+                .grant(Jenkins.ADMINISTER).everywhere().to("admin"));
+        SlaveComputer sc = createJnlpAgent("agent", new JNLPLauncher(null, null, RemotingWorkDirSettings.getEnabledDefaults()));
+
+        try (ACLContext ctx = ACL.as(User.getById("user", true))) {
+            try {
+                SlaveXmlUpdater.updateAll(TaskListener.NULL);
+                fail("updateAll() should require the Administer permission");
+            } catch (AccessDeniedException ex) {
+                // expected
+            }
+            try {
+                SlaveXmlUpdater.update(sc, TaskListener.NULL, false);
+                fail("update() should require the Administer permission");
+            } catch (AccessDeniedException ex) {
+                // expected
+            }
+        }
+
+        try (ACLContext ctx = ACL.as(User.getById("admin", true))) {
+            assertThat(SlaveXmlUpdater.updateAll(TaskListener.NULL).get("agent"), equalTo(Status.SKIPPED));
+            assertThat(SlaveXmlUpdater.update(sc, TaskListener.NULL, false), equalTo(Status.SKIPPED));
+        }
+    }
+
+    private SlaveComputer createJnlpAgent(String name, JNLPLauncher launcher) throws Exception {
+        DumbSlave agent = new DumbSlave(name, "C:\\jenkins", launcher);
+        j.jenkins.addNode(agent);
+        return (SlaveComputer) agent.toComputer();
+    }
+
+    private static String getArguments(String xml) {
+        return xml.substring(xml.indexOf("<arguments>"), xml.indexOf("</arguments>"));
+    }
+
+    private static String render(String serviceId, String args) throws Exception {
+        return WindowsSlaveInstaller.generateSlaveXml(serviceId, "myjava", null, args, Collections.<String, String>emptyMap());
+    }
+}
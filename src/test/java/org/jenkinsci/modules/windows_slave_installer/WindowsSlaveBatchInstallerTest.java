@@ -0,0 +1,203 @@
+package org.jenkinsci.modules.windows_slave_installer;
+
+import hudson.model.TaskListener;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import org.jenkinsci.modules.slave_installer.InstallationException;
+import org.jenkinsci.modules.slave_installer.LaunchConfiguration;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.jenkinsci.modules.windows_slave_installer.WindowsSlaveInstallerTest.verifyAgentDirectory;
+
+/**
+ * Tests of {@link WindowsSlaveBatchInstaller}.
+ */
+public class WindowsSlaveBatchInstallerTest {
+
+    @Rule
+    public TemporaryFolder tmpDir = new TemporaryFolder();
+
+    private File remotingJar;
+
+    @Before
+    public void initRemotingJar() throws IOException {
+        remotingJar = tmpDir.newFile("remoting.notjar");
+    }
+
+    @Test
+    public void shouldProvisionMultipleAgentsInBatch() throws Exception {
+        List<LaunchConfiguration> configs = new ArrayList<>();
+        for (String name : Arrays.asList("agent1", "agent2", "agent3", "agent4", "agent5")) {
+            configs.add(config(new File(tmpDir.getRoot(), "batch/" + name)));
+        }
+        FakeBatchInstaller installer = new FakeBatchInstaller(2, true);
+
+        List<WindowsSlaveBatchInstaller.Result> results = installer.install(configs, true);
+
+        assertThat("Unexpected number of results", results.size(), equalTo(configs.size()));
+        Set<String> serviceIds = new HashSet<>();
+        for (int i = 0; i < results.size(); i++) {
+            WindowsSlaveBatchInstaller.Result result = results.get(i);
+            File dir = configs.get(i).getStorage().getAbsoluteFile();
+            assertThat("Installation failed for " + dir, result.getFailure(), nullValue());
+            assertThat("Unexpected root directory", result.getRootDir(), equalTo(dir));
+            assertThat("Unexpected service id", result.getServiceId(), equalTo(WindowsSlaveInstaller.generateServiceId(dir.getPath())));
+            assertThat("Service should be installed", result.isInstalled(), equalTo(true));
+            assertThat("Service should be started", result.isStarted(), equalTo(true));
+            assertThat(installer.getCommands(dir), equalTo(Arrays.asList("install", "start")));
+            verifyAgentDirectory(dir);
+            serviceIds.add(result.getServiceId());
+        }
+        assertThat("Service ids should be unique", serviceIds.size(), equalTo(configs.size()));
+        assertThat("Parallelism limit has been exceeded", installer.maxConcurrentCalls.get(), lessThanOrEqualTo(2));
+    }
+
+    @Test
+    public void shouldReportFailuresPerAgentInBatch() throws Exception {
+        File sharedDir = new File(tmpDir.getRoot(), "batch/shared");
+        File otherDir = new File(tmpDir.getRoot(), "batch/other");
+        List<LaunchConfiguration> configs = Arrays.asList(
+                config(sharedDir),
+                new MockLaunchConfiguration(null, new URL("https://my.jenkins/computer/agent/connect.jnlp"), null, null) {
+                    @Override
+                    public File getStorage() throws IOException {
+                        throw new IOException("Cannot determine the storage");
+                    }
+                },
+                config(new File(sharedDir, ".")),
+                config(otherDir));
+        FakeBatchInstaller installer = new FakeBatchInstaller(WindowsSlaveBatchInstaller.DEFAULT_PARALLELISM, false);
+
+        List<WindowsSlaveBatchInstaller.Result> results = installer.install(configs, true);
+
+        assertThat("Unexpected number of results", results.size(), equalTo(configs.size()));
+        assertThat("The first agent should be installed", results.get(0).getFailure(), nullValue());
+        assertThat("Broken configuration should be reported", results.get(1).getFailure(), instanceOf(IOException.class));
+        assertThat("Broken configuration has no root directory", results.get(1).getRootDir(), nullValue());
+        assertThat("Duplicated root directory should be reported", results.get(2).getFailure(), instanceOf(InstallationException.class));
+        assertThat("Other agents should be installed", results.get(3).getFailure(), nullValue());
+        assertThat("Service should not be started", results.get(3).isStarted(), equalTo(false));
+        assertThat(installer.getCommands(otherDir), equalTo(Collections.singletonList("install")));
+        verifyAgentDirectory(otherDir);
+    }
+
+    @Test
+    public void shouldRejectDuplicatedServiceIds() throws Exception {
+        File dir = new File(tmpDir.getRoot(), "a_b");
+        File clashingDir = new File(tmpDir.getRoot(), "a/b");
+        assertThat("Directories are expected to produce the same service id",
+                WindowsSlaveInstaller.generateServiceId(clashingDir.getAbsolutePath()),
+                equalTo(WindowsSlaveInstaller.generateServiceId(dir.getAbsolutePath())));
+        FakeBatchInstaller installer = new FakeBatchInstaller(WindowsSlaveBatchInstaller.DEFAULT_PARALLELISM, false);
+
+        List<WindowsSlaveBatchInstaller.Result> results = installer.install(Arrays.asList(config(dir), config(clashingDir)), true);
+
+        assertThat("The first agent should be installed", results.get(0).getFailure(), nullValue());
+        assertThat("Duplicated service id should be reported", results.get(1).getFailure(), instanceOf(InstallationException.class));
+        assertThat("The descriptor should not be written", new File(clashingDir, "jenkins-slave.xml").exists(), equalTo(false));
+        assertThat("The service should not be installed", installer.getCommands(clashingDir), equalTo(Collections.<String>emptyList()));
+    }
+
+    @Test
+    public void shouldReportServiceInstallationFailures() throws Exception {
+        File okDir = new File(tmpDir.getRoot(), "ok");
+        File failingDir = new File(tmpDir.getRoot(), "failing");
+        File brokenDir = new File(tmpDir.getRoot(), "broken");
+        File notStartingDir = new File(tmpDir.getRoot(), "notStarting");
+        FakeBatchInstaller installer = new FakeBatchInstaller(2, true);
+        installer.exitCodes.put("install:" + failingDir.getAbsolutePath(), 1);
+        installer.exitCodes.put("install:" + brokenDir.getAbsolutePath(), -42);
+        installer.exitCodes.put("start:" + notStartingDir.getAbsolutePath(), 2);
+
+        List<WindowsSlaveBatchInstaller.Result> results = installer.install(
+                Arrays.asList(config(okDir), config(failingDir), config(brokenDir), config(notStartingDir)), true);
+
+        assertThat(results.get(0).isSuccessful(), equalTo(true));
+        assertThat(results.get(0).isStarted(), equalTo(true));
+
+        assertThat("Non-zero exit code should be reported", results.get(1).getFailure(), instanceOf(InstallationException.class));
+        assertThat(results.get(1).isInstalled(), equalTo(false));
+        assertThat("Failed service should not be started", installer.getCommands(failingDir), equalTo(Collections.singletonList("install")));
+
+        assertThat("Unexpected task failure should be reported", results.get(2).getFailure(), instanceOf(LinkageError.class));
+        assertThat(results.get(2).isInstalled(), equalTo(false));
+
+        assertThat("Start failure should be reported", results.get(3).getFailure(), instanceOf(InstallationException.class));
+        assertThat(results.get(3).isInstalled(), equalTo(true));
+        assertThat(results.get(3).isStarted(), equalTo(false));
+    }
+
+    private LaunchConfiguration config(File storage) throws IOException {
+        return new MockLaunchConfiguration(
+                new URL("https://my.jenkins/jnlpJars/slave.jar"),
+                new URL("https://my.jenkins/computer/" + storage.getName() + "/connect.jnlp"),
+                storage, remotingJar);
+    }
+
+    /**
+     * Records service wrapper invocations instead of running them.
+     * Exit code {@code -42} makes the invocation throw an unexpected error.
+     */
+    private static final class FakeBatchInstaller extends WindowsSlaveBatchInstaller {
+
+        final Map<String, Integer> exitCodes = Collections.synchronizedMap(new HashMap<String, Integer>());
+        final Map<File, List<String>> commands = Collections.synchronizedMap(new HashMap<File, List<String>>());
+        final AtomicInteger concurrentCalls = new AtomicInteger();
+        final AtomicInteger maxConcurrentCalls = new AtomicInteger();
+
+        FakeBatchInstaller(int parallelism, boolean startServices) {
+            super(parallelism, startServices);
+        }
+
+        @Override
+        int runElevated(File agentExe, String command, TaskListener out, File pwd) throws IOException, InterruptedException {
+            int current = concurrentCalls.incrementAndGet();
+            try {
+                int max;
+                do {
+                    max = maxConcurrentCalls.get();
+                } while (current > max && !maxConcurrentCalls.compareAndSet(max, current));
+                Thread.sleep(50);
+
+                File dir = pwd.getAbsoluteFile();
+                synchronized (commands) {
+                    List<String> dirCommands = commands.get(dir);
+                    if (dirCommands == null) {
+                        dirCommands = new ArrayList<>();
+                        commands.put(dir, dirCommands);
+                    }
+                    dirCommands.add(command);
+                }
+
+                Integer exitCode = exitCodes.get(command + ":" + dir.getPath());
+                if (exitCode != null && exitCode == -42) {
+                    throw new NoClassDefFoundError("Broken service wrapper");
+                }
+                return exitCode != null ? exitCode : 0;
+            } finally {
+                concurrentCalls.decrementAndGet();
+            }
+        }
+
+        List<String> getCommands(File dir) {
+            List<String> res = commands.get(dir.getAbsoluteFile());
+            return res != null ? res : Collections.<String>emptyList();
+        }
+    }
+}
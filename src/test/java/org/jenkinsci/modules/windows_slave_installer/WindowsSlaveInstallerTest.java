@@ -178,7 +178,7 @@ public class WindowsSlaveInstallerTest {
         assertThat("Found the comment end definition", str, not(endsWith("-->")));
     }
     
-    private static void verifyAgentDirectory(File dir) throws AssertionError {
+    /*package*/ static void verifyAgentDirectory(File dir) throws AssertionError {
         assertAgentFile(dir, "jenkins-slave.exe");
         assertAgentFile(dir, "jenkins-slave.xml");
         assertAgentFile(dir, "slave.jar");